@@ -26,14 +26,26 @@ import com.lambdaworks.redis.pubsub.RedisPubSubListener;
  */
 public class DRPubSubListener implements RedisPubSubListener<String, String>, Shutdownable {
     private DeltaRedisInterface plugin;
+    private DRRateLimiter rateLimiter;
 
     public DRPubSubListener(DeltaRedisInterface plugin) {
+        this(plugin, null);
+    }
+
+    /**
+     * @param plugin      Plugin that received messages are delivered to.
+     * @param rateLimiter Limiter checked before each message is delivered,
+     *                    or null to deliver every message.
+     */
+    public DRPubSubListener(DeltaRedisInterface plugin, DRRateLimiter rateLimiter) {
         this.plugin = plugin;
+        this.rateLimiter = rateLimiter;
     }
 
     @Override
     public void shutdown() {
         this.plugin = null;
+        this.rateLimiter = null;
     }
 
     /**
@@ -43,6 +55,10 @@ public class DRPubSubListener implements RedisPubSubListener<String, String>, Sh
      * message channel, and the actual message. Those parts are used to
      * create and call a DeltaRedisMessageEvent.
      * </p>
+     * <p>
+     * If a {@link DRRateLimiter} is set, the message is passed to it instead,
+     * and it calls the event only if the message is within the limit.
+     * </p>
      *
      * @param channel         Ignored as the listener is only registered to explicit channels.
      * @param completeMessage Complete received message.
@@ -55,7 +71,13 @@ public class DRPubSubListener implements RedisPubSubListener<String, String>, Sh
                     " , channel: " + messageParts[1] +
                     " , message: " + messageParts[2] + "}");
 
-            plugin.onRedisMessageEvent(messageParts[0], messageParts[1], messageParts[2]);
+            DRRateLimiter rateLimiter = this.rateLimiter;
+
+            if (rateLimiter != null) {
+                rateLimiter.offer(messageParts[0], messageParts[1], messageParts[2]);
+            } else {
+                plugin.onRedisMessageEvent(messageParts[0], messageParts[1], messageParts[2]);
+            }
         } else {
             plugin.severe("Received badly formatted message in DRPubSubListener. " +
                     "{message: " + completeMessage + "}");
@@ -0,0 +1,765 @@
+/*
+ * This file is part of DeltaRedis.
+ *
+ * DeltaRedis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaRedis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaRedis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaRedis.Shared.Redis;
+
+import com.gmail.tracebachi.DeltaRedis.Shared.DeltaRedisInterface;
+import com.gmail.tracebachi.DeltaRedis.Shared.Shutdownable;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket rate limiter for received messages.
+ * <p>
+ * Every message must take a token from the bucket of its (source, channel)
+ * and from the bucket of its source, so a source is capped as a whole no
+ * matter how many channels it uses. Each source has at most
+ * maxChannelsPerSource channel buckets. Messages on any further channel
+ * share a single overflow bucket for that source.
+ * </p>
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the theoretical arrival
+ * time of the next message (the GCRA form of a token bucket), so checking a
+ * message is two map lookups and a CAS per bucket. No locks are taken.
+ * </p>
+ * <p>
+ * Channel limits are resolved when a bucket is created, in the order:
+ * source and channel, any source and channel, source and any channel,
+ * any source and any channel, default. Changing a limit replaces the
+ * matching buckets, so it applies to the next message.
+ * </p>
+ * <p>
+ * A bucket trips when its first message is rejected and only recovers once
+ * it has fully refilled, so a sustained flood logs a single trip.
+ * </p>
+ * <p>
+ * Every message passed to {@link #offer(String, String, String)} is counted
+ * exactly once as allowed, dropped, sampled, coalesced or held.
+ * </p>
+ */
+public class DRRateLimiter implements Shutdownable {
+    /**
+     * What to do with a message that arrives while its bucket is empty.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard every message over the limit.
+         */
+        DROP,
+
+        /**
+         * Deliver one of every N messages over the limit and discard the rest.
+         */
+        SAMPLE,
+
+        /**
+         * Hold only the latest message over the limit for each channel, or
+         * for the whole overflow bucket of a source. It is discarded if a
+         * newer message on that channel is delivered first, or delivered by
+         * {@link DRRateLimiter#flushCoalesced()} once tokens are available.
+         */
+        COALESCE
+    }
+
+    /**
+     * Rate and burst size of a single bucket.
+     */
+    public static class Limit {
+        private final double messagesPerSecond;
+        private final int burst;
+
+        /**
+         * @param messagesPerSecond Sustained number of messages allowed per second.
+         * @param burst             Number of messages allowed back to back
+         *                          when the bucket is full.
+         */
+        public Limit(double messagesPerSecond, int burst) {
+            if (Double.isNaN(messagesPerSecond) || Double.isInfinite(messagesPerSecond) ||
+                    messagesPerSecond <= 0) {
+                throw new IllegalArgumentException("messagesPerSecond must be positive and finite");
+            }
+
+            if (burst < 1) {
+                throw new IllegalArgumentException("burst must be at least 1");
+            }
+
+            this.messagesPerSecond = messagesPerSecond;
+            this.burst = burst;
+        }
+
+        public double getMessagesPerSecond() {
+            return messagesPerSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+    }
+
+    /**
+     * Longest time a full bucket may span, kept well below {@link Long#MAX_VALUE}
+     * so the arrival time arithmetic cannot overflow.
+     */
+    private static final long MAX_SPAN_NANOS = Long.MAX_VALUE / 4;
+
+    private static final String ALL_CHANNELS = "(all)";
+    private static final String OVERFLOW_CHANNELS = "(overflow)";
+
+    private final Limit defaultLimit;
+    private final Limit defaultSourceLimit;
+    private final int maxChannelsPerSource;
+    private final OverflowPolicy policy;
+    private final int sampleRate;
+    private final ConcurrentHashMap<LimitKey, Limit> limits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Limit> sourceLimits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SourceState> sources = new ConcurrentHashMap<>();
+    private volatile Limit anySourceLimit;
+
+    private final LongAdder allowedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder sampledCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder heldCount = new LongAdder();
+    private final LongAdder tripCount = new LongAdder();
+
+    private DeltaRedisInterface plugin;
+
+    /**
+     * @param plugin               Plugin that messages are delivered to and logged with.
+     * @param defaultLimit         Limit for every (source, channel) without an override.
+     * @param defaultSourceLimit   Limit for every source as a whole without an override.
+     * @param maxChannelsPerSource Number of channel buckets a source may have
+     *                             before further channels share its overflow bucket.
+     * @param policy               Policy for messages over the limit.
+     * @param sampleRate           For {@link OverflowPolicy#SAMPLE}, one of every
+     *                             sampleRate messages over the limit is delivered.
+     */
+    public DRRateLimiter(DeltaRedisInterface plugin, Limit defaultLimit, Limit defaultSourceLimit,
+                         int maxChannelsPerSource, OverflowPolicy policy, int sampleRate) {
+        if (defaultLimit == null || defaultSourceLimit == null || policy == null) {
+            throw new IllegalArgumentException("Limits and policy must not be null");
+        }
+
+        if (maxChannelsPerSource < 1) {
+            throw new IllegalArgumentException("maxChannelsPerSource must be at least 1");
+        }
+
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate must be at least 1");
+        }
+
+        this.plugin = plugin;
+        this.defaultLimit = defaultLimit;
+        this.defaultSourceLimit = defaultSourceLimit;
+        this.maxChannelsPerSource = maxChannelsPerSource;
+        this.policy = policy;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Discards all held messages, counting them as dropped.
+     */
+    @Override
+    public void shutdown() {
+        for (SourceState state : sources.values()) {
+            for (String channel : state.pending.keySet()) {
+                if (state.pending.remove(channel) != null) {
+                    heldCount.decrement();
+                    droppedCount.increment();
+                }
+            }
+
+            if (state.overflowPending.getAndSet(null) != null) {
+                heldCount.decrement();
+                droppedCount.increment();
+            }
+        }
+
+        sources.clear();
+        limits.clear();
+        sourceLimits.clear();
+        plugin = null;
+    }
+
+    /**
+     * Overrides the limit for a (source, channel). Either may be null to
+     * match any value. Matching buckets are replaced, so the limit applies
+     * to the next message, even during a flood.
+     *
+     * @param source  Server that sends the messages, or null for any.
+     * @param channel Channel of the messages, or null for any.
+     * @param limit   Limit to apply.
+     */
+    public void setLimit(String source, String channel, Limit limit) {
+        limits.put(new LimitKey(source, channel), limit);
+
+        for (Map.Entry<String, SourceState> entry : sources.entrySet()) {
+            if (source != null && !source.equals(entry.getKey())) {
+                continue;
+            }
+
+            SourceState state = entry.getValue();
+
+            if (channel == null) {
+                state.channels.clear();
+                state.overflow = new Bucket(resolveLimit(entry.getKey(), null), true);
+            } else {
+                state.channels.remove(channel);
+            }
+        }
+    }
+
+    /**
+     * Overrides the limit for a source as a whole. The source's bucket is
+     * replaced, so the limit applies to the next message, even during a flood.
+     *
+     * @param source Server that sends the messages, or null for any.
+     * @param limit  Limit to apply.
+     */
+    public void setSourceLimit(String source, Limit limit) {
+        if (source == null) {
+            anySourceLimit = limit;
+        } else {
+            sourceLimits.put(source, limit);
+        }
+
+        for (Map.Entry<String, SourceState> entry : sources.entrySet()) {
+            if (source == null || source.equals(entry.getKey())) {
+                entry.getValue().sourceBucket = new Bucket(resolveSourceLimit(entry.getKey()), false);
+            }
+        }
+    }
+
+    /**
+     * Checks a received message against the buckets for its channel and
+     * source, and delivers it to the plugin if it is within both limits.
+     * <p>
+     * This method should be called from the thread that receives messages.
+     * </p>
+     *
+     * @param source  Server that sent the message.
+     * @param channel Custom channel of the message.
+     * @param message Message to deliver.
+     * @return True if the message was delivered. False if it was dropped
+     * or held back.
+     */
+    public boolean offer(String source, String channel, String message) {
+        while (true) {
+            SourceState state = getSourceState(source);
+            Bucket channelBucket = getChannelBucket(source, state, channel);
+            Bucket sourceBucket = state.sourceBucket;
+            long now = System.nanoTime();
+
+            checkRecovered(channelBucket, source, channelLabel(channelBucket, channel), now);
+            checkRecovered(sourceBucket, source, ALL_CHANNELS, now);
+
+            Bucket rejectedBy = null;
+
+            if (!channelBucket.tryAcquire(now)) {
+                rejectedBy = channelBucket;
+            } else if (!sourceBucket.tryAcquire(now)) {
+                channelBucket.release();
+                rejectedBy = sourceBucket;
+            }
+
+            // The state is being removed by cleanup(), so retry against its replacement
+            if (state.retired) {
+                if (rejectedBy == null) {
+                    channelBucket.release();
+                    sourceBucket.release();
+                }
+                continue;
+            }
+
+            if (rejectedBy == null) {
+                allowedCount.increment();
+
+                if (policy == OverflowPolicy.COALESCE) {
+                    discardHeld(state, channelBucket, channel);
+                }
+
+                deliver(source, channel, message);
+                return true;
+            }
+
+            if (!rejectedBy.throttled.get() && rejectedBy.throttled.compareAndSet(false, true)) {
+                String label = (rejectedBy == sourceBucket) ?
+                        ALL_CHANNELS : channelLabel(channelBucket, channel);
+                trip(rejectedBy, source, label);
+            }
+
+            long rejected = rejectedBy.rejectedSinceTrip.incrementAndGet();
+
+            switch (policy) {
+                case SAMPLE:
+                    if (rejected % sampleRate == 0) {
+                        sampledCount.increment();
+                        deliver(source, channel, message);
+                        return true;
+                    }
+                    droppedCount.increment();
+                    return false;
+                case COALESCE:
+                    if (hold(state, channelBucket, channel, message)) {
+                        continue;
+                    }
+                    return false;
+                default:
+                    droppedCount.increment();
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Delivers messages held back by {@link OverflowPolicy#COALESCE} when
+     * their channel and source buckets both have a token.
+     * <p>
+     * This method may be called from any thread, such as a repeating
+     * scheduler task, and does not block. A held message is claimed with a
+     * CAS before it is delivered, and a newer message delivered by
+     * {@link #offer(String, String, String)} discards any held message it
+     * finds, so a held message is never delivered once a newer message on
+     * the same (source, channel) has been accepted. The two methods may call
+     * {@link DeltaRedisInterface#onRedisMessageEvent(String, String, String)}
+     * at the same time, so it must be thread safe.
+     * </p>
+     */
+    public void flushCoalesced() {
+        if (policy != OverflowPolicy.COALESCE) {
+            return;
+        }
+
+        for (Map.Entry<String, SourceState> entry : sources.entrySet()) {
+            String source = entry.getKey();
+            SourceState state = entry.getValue();
+
+            for (Map.Entry<String, String> held : state.pending.entrySet()) {
+                String channel = held.getKey();
+                Bucket channelBucket = getChannelBucket(source, state, channel);
+
+                if (acquireForFlush(source, state, channelBucket, channel)) {
+                    if (state.pending.remove(channel, held.getValue())) {
+                        heldCount.decrement();
+                        allowedCount.increment();
+                        deliver(source, channel, held.getValue());
+                    } else {
+                        channelBucket.release();
+                        state.sourceBucket.release();
+                    }
+                }
+            }
+
+            Held held = state.overflowPending.get();
+            Bucket overflow = state.overflow;
+
+            if (held != null && acquireForFlush(source, state, overflow, held.channel)) {
+                if (state.overflowPending.compareAndSet(held, null)) {
+                    heldCount.decrement();
+                    allowedCount.increment();
+                    deliver(source, held.channel, held.message);
+                } else {
+                    overflow.release();
+                    state.sourceBucket.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears the trip of every bucket that has fully refilled, and removes
+     * buckets that are full, as they behave the same as a newly created
+     * bucket. A source is removed once it has no channel buckets, no held
+     * messages, and its own buckets are full.
+     */
+    public void cleanup() {
+        long now = System.nanoTime();
+
+        for (Map.Entry<String, SourceState> entry : sources.entrySet()) {
+            String source = entry.getKey();
+            SourceState state = entry.getValue();
+
+            checkRecovered(state.sourceBucket, source, ALL_CHANNELS, now);
+            checkRecovered(state.overflow, source, OVERFLOW_CHANNELS, now);
+
+            for (Map.Entry<String, Bucket> channelEntry : state.channels.entrySet()) {
+                Bucket bucket = channelEntry.getValue();
+
+                if (bucket.isFull(now)) {
+                    checkRecovered(bucket, source, channelEntry.getKey(), now);
+                    state.channels.remove(channelEntry.getKey(), bucket);
+                }
+            }
+
+            sources.computeIfPresent(source, (key, current) -> {
+                if (current != state) {
+                    return current;
+                }
+
+                // Retire before checking, so a concurrent hold() either sees
+                // the flag and takes its message back, or is seen here
+                state.retired = true;
+
+                if (state.isIdle(now)) {
+                    return null;
+                }
+
+                state.retired = false;
+                return current;
+            });
+        }
+    }
+
+    /**
+     * @return Number of messages delivered within the limit, including
+     * held messages delivered by {@link #flushCoalesced()}.
+     */
+    public long getAllowedCount() {
+        return allowedCount.sum();
+    }
+
+    /**
+     * @return Number of messages discarded by {@link OverflowPolicy#DROP}
+     * or {@link OverflowPolicy#SAMPLE}, or held when the limiter shut down.
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return Number of messages over the limit delivered by
+     * {@link OverflowPolicy#SAMPLE}.
+     */
+    public long getSampledCount() {
+        return sampledCount.sum();
+    }
+
+    /**
+     * @return Number of held messages discarded under
+     * {@link OverflowPolicy#COALESCE} because a newer message replaced them.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * @return Number of messages currently held back under
+     * {@link OverflowPolicy#COALESCE}.
+     */
+    public long getHeldCount() {
+        return heldCount.sum();
+    }
+
+    /**
+     * @return Number of times a channel, overflow or source bucket went
+     * over its limit.
+     */
+    public long getTripCount() {
+        return tripCount.sum();
+    }
+
+    int getSourceCount() {
+        return sources.size();
+    }
+
+    int getChannelBucketCount(String source) {
+        SourceState state = sources.get(source);
+        return (state != null) ? state.channels.size() : 0;
+    }
+
+    private SourceState getSourceState(String source) {
+        SourceState state = sources.get(source);
+
+        if (state == null) {
+            state = sources.computeIfAbsent(source, (k) -> new SourceState(
+                    new Bucket(resolveSourceLimit(k), false),
+                    new Bucket(resolveLimit(k, null), true)));
+        }
+        return state;
+    }
+
+    private Bucket getChannelBucket(String source, SourceState state, String channel) {
+        Bucket bucket = state.channels.get(channel);
+
+        if (bucket != null) {
+            return bucket;
+        }
+
+        if (state.channels.size() >= maxChannelsPerSource) {
+            return state.overflow;
+        }
+
+        return state.channels.computeIfAbsent(channel,
+                (k) -> new Bucket(resolveLimit(source, channel), false));
+    }
+
+    private Limit resolveLimit(String source, String channel) {
+        if (limits.isEmpty()) {
+            return defaultLimit;
+        }
+
+        Limit limit = limits.get(new LimitKey(source, channel));
+
+        if (limit == null) {
+            limit = limits.get(new LimitKey(null, channel));
+        }
+
+        if (limit == null) {
+            limit = limits.get(new LimitKey(source, null));
+        }
+
+        if (limit == null) {
+            limit = limits.get(new LimitKey(null, null));
+        }
+        return (limit != null) ? limit : defaultLimit;
+    }
+
+    private Limit resolveSourceLimit(String source) {
+        Limit limit = sourceLimits.get(source);
+
+        if (limit == null) {
+            limit = anySourceLimit;
+        }
+        return (limit != null) ? limit : defaultSourceLimit;
+    }
+
+    /**
+     * Holds a message under {@link OverflowPolicy#COALESCE}.
+     *
+     * @return True if the state was retired while the message was being
+     * held, in which case the message was taken back and must be offered again.
+     */
+    private boolean hold(SourceState state, Bucket channelBucket, String channel, String message) {
+        heldCount.increment();
+
+        if (channelBucket.overflow) {
+            Held held = new Held(channel, message);
+
+            if (state.overflowPending.getAndSet(held) != null) {
+                heldCount.decrement();
+                coalescedCount.increment();
+            }
+
+            if (state.retired && state.overflowPending.compareAndSet(held, null)) {
+                heldCount.decrement();
+                return true;
+            }
+        } else {
+            if (state.pending.put(channel, message) != null) {
+                heldCount.decrement();
+                coalescedCount.increment();
+            }
+
+            if (state.retired && state.pending.remove(channel, message)) {
+                heldCount.decrement();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void discardHeld(SourceState state, Bucket channelBucket, String channel) {
+        if (channelBucket.overflow) {
+            Held held = state.overflowPending.get();
+
+            if (held != null && held.channel.equals(channel) &&
+                    state.overflowPending.compareAndSet(held, null)) {
+                heldCount.decrement();
+                coalescedCount.increment();
+            }
+        } else if (state.pending.remove(channel) != null) {
+            heldCount.decrement();
+            coalescedCount.increment();
+        }
+    }
+
+    private boolean acquireForFlush(String source, SourceState state, Bucket channelBucket,
+                                    String channel) {
+        Bucket sourceBucket = state.sourceBucket;
+        long now = System.nanoTime();
+
+        checkRecovered(channelBucket, source, channelLabel(channelBucket, channel), now);
+        checkRecovered(sourceBucket, source, ALL_CHANNELS, now);
+
+        if (!channelBucket.tryAcquire(now)) {
+            return false;
+        }
+
+        if (!sourceBucket.tryAcquire(now)) {
+            channelBucket.release();
+            return false;
+        }
+        return true;
+    }
+
+    private void deliver(String source, String channel, String message) {
+        DeltaRedisInterface plugin = this.plugin;
+
+        if (plugin != null) {
+            plugin.onRedisMessageEvent(source, channel, message);
+        }
+    }
+
+    private void checkRecovered(Bucket bucket, String source, String label, long now) {
+        if (bucket.throttled.get() && bucket.isFull(now)) {
+            recover(bucket, source, label);
+        }
+    }
+
+    private void trip(Bucket bucket, String source, String label) {
+        tripCount.increment();
+
+        DeltaRedisInterface plugin = this.plugin;
+        if (plugin != null) {
+            plugin.info("Rate limit reached, applying " + policy + ". {source: " + source +
+                    " , channel: " + label +
+                    " , limit: " + bucket.limit.getMessagesPerSecond() + "/s" +
+                    " , burst: " + bucket.limit.getBurst() + "}");
+        }
+    }
+
+    private void recover(Bucket bucket, String source, String label) {
+        if (!bucket.throttled.compareAndSet(true, false)) {
+            return;
+        }
+
+        long rejected = bucket.rejectedSinceTrip.getAndSet(0);
+
+        DeltaRedisInterface plugin = this.plugin;
+        if (plugin != null) {
+            plugin.info("Rate limit cleared. {source: " + source +
+                    " , channel: " + label +
+                    " , rejected: " + rejected + "}");
+        }
+    }
+
+    private static String channelLabel(Bucket bucket, String channel) {
+        return bucket.overflow ? OVERFLOW_CHANNELS : channel;
+    }
+
+    private static class LimitKey {
+        private final String source;
+        private final String channel;
+
+        private LimitKey(String source, String channel) {
+            this.source = source;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof LimitKey)) {
+                return false;
+            }
+
+            LimitKey other = (LimitKey) o;
+            return Objects.equals(source, other.source) && Objects.equals(channel, other.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, channel);
+        }
+    }
+
+    private static class Held {
+        private final String channel;
+        private final String message;
+
+        private Held(String channel, String message) {
+            this.channel = channel;
+            this.message = message;
+        }
+    }
+
+    private static class SourceState {
+        private final ConcurrentHashMap<String, Bucket> channels = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap<>();
+        private final AtomicReference<Held> overflowPending = new AtomicReference<>();
+        private volatile Bucket sourceBucket;
+        private volatile Bucket overflow;
+        private volatile boolean retired;
+
+        private SourceState(Bucket sourceBucket, Bucket overflow) {
+            this.sourceBucket = sourceBucket;
+            this.overflow = overflow;
+        }
+
+        private boolean isIdle(long now) {
+            return channels.isEmpty() && pending.isEmpty() && overflowPending.get() == null &&
+                    sourceBucket.isFull(now) && overflow.isFull(now);
+        }
+    }
+
+    private static class Bucket {
+        private final Limit limit;
+        private final boolean overflow;
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong theoreticalArrival;
+        private final AtomicBoolean throttled = new AtomicBoolean(false);
+        private final AtomicLong rejectedSinceTrip = new AtomicLong(0);
+
+        private Bucket(Limit limit, boolean overflow) {
+            // Casting a huge interval saturates at Long.MAX_VALUE before clamping
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / limit.getMessagesPerSecond());
+
+            this.limit = limit;
+            this.overflow = overflow;
+            this.intervalNanos = Math.max(1L, Math.min(interval, MAX_SPAN_NANOS / limit.getBurst()));
+            this.toleranceNanos = intervalNanos * (limit.getBurst() - 1);
+            this.theoreticalArrival = new AtomicLong(System.nanoTime());
+        }
+
+        private boolean tryAcquire(long now) {
+            while (true) {
+                long tat = theoreticalArrival.get();
+
+                if (tat - now > toleranceNanos) {
+                    return false;
+                }
+
+                long next = Math.max(tat - now, 0L) + now + intervalNanos;
+
+                if (theoreticalArrival.compareAndSet(tat, next)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Returns a token taken by {@link #tryAcquire(long)} that was not used.
+         */
+        private void release() {
+            theoreticalArrival.addAndGet(-intervalNanos);
+        }
+
+        private boolean isFull(long now) {
+            return theoreticalArrival.get() - now <= 0;
+        }
+    }
+}
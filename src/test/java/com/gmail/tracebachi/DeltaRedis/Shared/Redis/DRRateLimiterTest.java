@@ -0,0 +1,266 @@
+/*
+ * This file is part of DeltaRedis.
+ *
+ * DeltaRedis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaRedis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaRedis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaRedis.Shared.Redis;
+
+import com.gmail.tracebachi.DeltaRedis.Shared.Redis.DRRateLimiter.Limit;
+import com.gmail.tracebachi.DeltaRedis.Shared.Redis.DRRateLimiter.OverflowPolicy;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DRRateLimiterTest {
+    private static final Limit UNLIMITED = new Limit(1e9, 1_000_000);
+
+    @Test
+    public void dropsMessagesOverBurst() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(1, 5), OverflowPolicy.DROP, 1);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.offer("A", "Talk", "m" + i);
+        }
+
+        assertEquals(5, plugin.delivered.size());
+        assertEquals(5, limiter.getAllowedCount());
+        assertEquals(15, limiter.getDroppedCount());
+        assertEquals(1, limiter.getTripCount());
+    }
+
+    @Test
+    public void sustainedFloodTripsOnce() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(100, 10), OverflowPolicy.DROP, 1);
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        long received = 0;
+
+        while (System.nanoTime() < end) {
+            limiter.offer("A", "Talk", "m");
+            received++;
+            LockSupport.parkNanos(500_000);
+        }
+
+        assertTrue(limiter.getAllowedCount() > 10);
+        assertEquals(1, limiter.getTripCount());
+        assertEquals(1, plugin.infoLines.size());
+        assertEquals(received, limiter.getAllowedCount() + limiter.getDroppedCount());
+    }
+
+    @Test
+    public void samplesAcrossRefills() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(1, 1), OverflowPolicy.SAMPLE, 4);
+
+        for (int i = 0; i < 13; i++) {
+            limiter.offer("A", "Talk", "m" + i);
+        }
+
+        assertEquals(Arrays.asList("m0", "m4", "m8", "m12"), plugin.delivered);
+        assertEquals(1, limiter.getAllowedCount());
+        assertEquals(3, limiter.getSampledCount());
+        assertEquals(9, limiter.getDroppedCount());
+    }
+
+    @Test
+    public void flushDeliversLatestHeldMessage() throws InterruptedException {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(20, 1), OverflowPolicy.COALESCE, 1);
+
+        assertTrue(limiter.offer("A", "Talk", "a"));
+        assertFalse(limiter.offer("A", "Talk", "b"));
+        assertFalse(limiter.offer("A", "Talk", "c"));
+        assertEquals(1, limiter.getCoalescedCount());
+        assertEquals(1, limiter.getHeldCount());
+
+        Thread.sleep(100);
+        limiter.flushCoalesced();
+
+        assertEquals(Arrays.asList("a", "c"), plugin.delivered);
+        assertEquals(2, limiter.getAllowedCount());
+        assertEquals(0, limiter.getHeldCount());
+    }
+
+    @Test
+    public void newerMessageDiscardsHeldMessage() throws InterruptedException {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(20, 1), OverflowPolicy.COALESCE, 1);
+
+        limiter.offer("A", "Talk", "a");
+        limiter.offer("A", "Talk", "b");
+        Thread.sleep(100);
+        limiter.offer("A", "Talk", "c");
+        limiter.flushCoalesced();
+
+        assertEquals(Arrays.asList("a", "c"), plugin.delivered);
+        assertEquals(2, limiter.getAllowedCount());
+        assertEquals(1, limiter.getCoalescedCount());
+        assertEquals(0, limiter.getHeldCount());
+    }
+
+    @Test
+    public void cleanupRecoversAndRemovesSilentBucket() throws InterruptedException {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(1000, 1), OverflowPolicy.DROP, 1);
+
+        limiter.offer("A", "Talk", "a");
+        limiter.offer("A", "Talk", "b");
+        Thread.sleep(100);
+        limiter.cleanup();
+
+        assertEquals(0, limiter.getSourceCount());
+        assertEquals(2, plugin.infoLines.size());
+        assertTrue(plugin.infoLines.get(1).startsWith("Rate limit cleared."));
+    }
+
+    @Test
+    public void wildcardIsSeparateFromServerNames() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(1000, 100), OverflowPolicy.DROP, 1);
+        limiter.setLimit("*", null, new Limit(1, 1));
+        limiter.setLimit(null, "Strict", new Limit(1, 1));
+
+        assertTrue(limiter.offer("A", "Talk", "a"));
+        assertTrue(limiter.offer("A", "Talk", "b"));
+        assertTrue(limiter.offer("*", "Talk", "c"));
+        assertFalse(limiter.offer("*", "Talk", "d"));
+        assertTrue(limiter.offer("B", "Strict", "e"));
+        assertFalse(limiter.offer("B", "Strict", "f"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limitRejectsNaN() {
+        new Limit(Double.NaN, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limitRejectsInfinity() {
+        new Limit(Double.POSITIVE_INFINITY, 1);
+    }
+
+    @Test
+    public void tinyRateDoesNotOverflow() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(1e-300, 2), OverflowPolicy.DROP, 1);
+
+        assertTrue(limiter.offer("A", "Talk", "a"));
+        assertTrue(limiter.offer("A", "Talk", "b"));
+        assertFalse(limiter.offer("A", "Talk", "c"));
+    }
+
+    @Test
+    public void sourceLimitCapsChangingChannels() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = new DRRateLimiter(plugin, new Limit(1000, 100), new Limit(1, 5),
+                64, OverflowPolicy.DROP, 1);
+
+        for (int i = 0; i < 50; i++) {
+            limiter.offer("A", "Talk" + i, "m" + i);
+        }
+
+        assertEquals(5, plugin.delivered.size());
+        assertEquals(45, limiter.getDroppedCount());
+        assertEquals(1, limiter.getTripCount());
+        assertTrue(limiter.offer("B", "Talk", "other source"));
+    }
+
+    @Test
+    public void unknownChannelsShareOverflowBucket() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = new DRRateLimiter(plugin, new Limit(1, 1), UNLIMITED,
+                4, OverflowPolicy.DROP, 1);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.offer("A", "Talk" + i, "m" + i);
+        }
+
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), plugin.delivered);
+        assertEquals(4, limiter.getChannelBucketCount("A"));
+    }
+
+    @Test
+    public void setLimitAppliesDuringFlood() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(1, 1000), OverflowPolicy.DROP, 1);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.offer("A", "Talk", "m" + i));
+        }
+
+        limiter.setLimit(null, "Talk", new Limit(1, 1));
+
+        assertTrue(limiter.offer("A", "Talk", "a"));
+        assertFalse(limiter.offer("A", "Talk", "b"));
+    }
+
+    @Test
+    public void setSourceLimitAppliesDuringFlood() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(1, 1000), OverflowPolicy.DROP, 1);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.offer("A", "Talk" + i, "m" + i));
+        }
+
+        limiter.setSourceLimit("A", new Limit(1, 1));
+
+        assertTrue(limiter.offer("A", "Talk", "a"));
+        assertFalse(limiter.offer("A", "Other", "b"));
+        assertTrue(limiter.offer("B", "Talk", "c"));
+    }
+
+    @Test
+    public void cleanupKeepsHeldMessage() throws InterruptedException {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(20, 1), OverflowPolicy.COALESCE, 1);
+
+        limiter.offer("A", "Talk", "a");
+        limiter.offer("A", "Talk", "b");
+        Thread.sleep(100);
+        limiter.cleanup();
+
+        assertEquals(1, limiter.getSourceCount());
+        assertEquals(1, limiter.getHeldCount());
+
+        limiter.flushCoalesced();
+
+        assertEquals(Arrays.asList("a", "b"), plugin.delivered);
+        assertEquals(0, limiter.getHeldCount());
+    }
+
+    @Test
+    public void shutdownCountsHeldAsDropped() {
+        RecordingPlugin plugin = new RecordingPlugin();
+        DRRateLimiter limiter = limiter(plugin, new Limit(1, 1), OverflowPolicy.COALESCE, 1);
+
+        limiter.offer("A", "Talk", "a");
+        limiter.offer("A", "Talk", "b");
+        limiter.shutdown();
+
+        assertEquals(0, limiter.getHeldCount());
+        assertEquals(1, limiter.getDroppedCount());
+    }
+
+    private static DRRateLimiter limiter(RecordingPlugin plugin, Limit limit,
+                                         OverflowPolicy policy, int sampleRate) {
+        return new DRRateLimiter(plugin, limit, UNLIMITED, 64, policy, sampleRate);
+    }
+}
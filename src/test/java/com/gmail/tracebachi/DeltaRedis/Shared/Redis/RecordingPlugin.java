@@ -0,0 +1,58 @@
+/*
+ * This file is part of DeltaRedis.
+ *
+ * DeltaRedis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaRedis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaRedis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaRedis.Shared.Redis;
+
+import com.gmail.tracebachi.DeltaRedis.Shared.DeltaRedisInterface;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Plugin that records delivered messages and INFO log lines.
+ */
+class RecordingPlugin implements DeltaRedisInterface {
+    final List<String> delivered = new CopyOnWriteArrayList<>();
+    final List<String> infoLines = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onRedisMessageEvent(String source, String channel, String message) {
+        delivered.add(message);
+    }
+
+    @Override
+    public String getBungeeName() {
+        return "Bungee";
+    }
+
+    @Override
+    public String getServerName() {
+        return "Server";
+    }
+
+    @Override
+    public void info(String message) {
+        infoLines.add(message);
+    }
+
+    @Override
+    public void severe(String message) {
+    }
+
+    @Override
+    public void debug(String message) {
+    }
+}